@@ -27,8 +27,15 @@
  */
 package org.signaut.jetty.server.session;
 
+import java.math.BigInteger;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ConcurrentMap;
 
@@ -58,6 +65,23 @@ public class HazelcastSessionIdManager extends AbstractSessionIdManager implemen
     public static final String SESSION_ID_SET = "signaut.sessionIdSet";
     public static final String SESSION_MAP = "signaut.sessionMap";
     public static final String SESSION_ATTRIBUTE_MAP = "signaut.sessionAttrMap";
+    private static final int MIN_ID_ENTROPY_BYTES = 16;
+    // Same request attribute as AbstractSessionIdManager uses
+    private static final String NEW_SESSION_ID = "org.eclipse.jetty.server.newSessionId";
+    private int idEntropyBytes = 0;
+    private int idRandomLength;
+
+    private static final ThreadLocal<SecureRandom> localRandom = new ThreadLocal<SecureRandom>() {
+        @Override
+        protected SecureRandom initialValue() {
+            try {
+                // Self-seeding and not shared between threads
+                return SecureRandom.getInstance("SHA1PRNG");
+            } catch (NoSuchAlgorithmException e) {
+                return new SecureRandom();
+            }
+        }
+    };
 
     
     public HazelcastSessionIdManager(Server server, HazelcastInstance hazelcastInstance) {
@@ -83,10 +107,91 @@ public class HazelcastSessionIdManager extends AbstractSessionIdManager implemen
 
     }
 
+    public HazelcastInstance getHazelcastInstance() {
+        return hazelcastInstance;
+    }
+
     public void setWorkerName(String name) {
         super.setWorkerName(name.replace(".", "-"));
     }
 
+    public int getIdEntropyBytes() {
+        return idEntropyBytes;
+    }
+
+    /**
+     * Number of random bytes in session IDs generated locally. When set, IDs
+     * are built from the worker name, the current time and this many bytes
+     * from a per-thread {@link SecureRandom}, and are not checked against
+     * the cluster for uniqueness, so at least 16 bytes are required to keep
+     * IDs unguessable and collisions practically impossible. 0 (the default)
+     * uses Jetty's generator, which checks every new ID against the cluster.
+     *
+     * @throws IllegalArgumentException if not 0 and less than 16
+     */
+    public void setIdEntropyBytes(int idEntropyBytes) {
+        if (idEntropyBytes != 0 && idEntropyBytes < MIN_ID_ENTROPY_BYTES) {
+            throw new IllegalArgumentException("Session IDs need at least " + MIN_ID_ENTROPY_BYTES
+                    + " random bytes, got " + idEntropyBytes);
+        }
+        this.idEntropyBytes = idEntropyBytes;
+        if (idEntropyBytes > 0) {
+            final byte[] max = new byte[idEntropyBytes];
+            Arrays.fill(max, (byte) 0xff);
+            this.idRandomLength = new BigInteger(1, max).toString(36).length();
+        }
+    }
+
+    /**
+     * Same reuse rules as {@link AbstractSessionIdManager}, but without its
+     * lock on the manager when IDs are generated locally, so session creation
+     * is not serialized across threads.
+     */
+    @Override
+    public String newSessionId(HttpServletRequest request, long created) {
+        if (idEntropyBytes <= 0) {
+            return super.newSessionId(request, created);
+        }
+        if (request == null) {
+            return newSessionId(created);
+        }
+        // Reuse a session ID the client sent if it is known in the cluster
+        final String requestedId = request.getRequestedSessionId();
+        if (requestedId != null) {
+            final String clusterId = getClusterId(requestedId);
+            if (idInUse(clusterId)) {
+                return clusterId;
+            }
+        }
+        // Reuse an ID created by another context during this request
+        final String newId = (String) request.getAttribute(NEW_SESSION_ID);
+        if (newId != null && idInUse(newId)) {
+            return newId;
+        }
+        final String id = newSessionId(request.hashCode());
+        request.setAttribute(NEW_SESSION_ID, id);
+        return id;
+    }
+
+    @Override
+    public String newSessionId(long seedTerm) {
+        if (idEntropyBytes <= 0) {
+            return super.newSessionId(seedTerm);
+        }
+        final byte[] bytes = new byte[idEntropyBytes];
+        localRandom.get().nextBytes(bytes);
+        final String random = new BigInteger(1, bytes).toString(36);
+        final StringBuilder id = new StringBuilder();
+        if (getWorkerName() != null) {
+            id.append(getWorkerName());
+        }
+        id.append(Long.toString(System.currentTimeMillis(), 36));
+        for (int i = random.length(); i < idRandomLength; i++) {
+            id.append('0');
+        }
+        return id.append(random).toString();
+    }
+
     public String getNodeId(String clusterId, HttpServletRequest request) {
         return clusterId + '.' + getWorkerName();
     }
@@ -143,29 +248,90 @@ public class HazelcastSessionIdManager extends AbstractSessionIdManager implemen
         log.debug("Invalidating " + id);
         removeSession(id);
         synchronized (sessions) {
-            for (Handler handler : server.getChildHandlersByClass(ContextHandler.class)) {
-                final SessionHandler sessionHandler = ((ContextHandler) handler).getChildHandlerByClass(SessionHandler.class);
-                if (sessionHandler != null) {
-                    final SessionManager manager = sessionHandler.getSessionManager();
-                    if (manager != null && manager instanceof HazelcastSessionManager) {
-                        final AbstractSession session = ((HazelcastSessionManager) manager).getSession(id);
-                        if (session != null) {
-                            session.invalidate();
-                        }
-                    }
+            for (HazelcastSessionManager manager : getSessionManagers()) {
+                final AbstractSession session = manager.getSession(id);
+                if (session != null) {
+                    session.invalidate();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the cluster IDs of all sessions, in any context of this server,
+     * authenticated as <code>principal</code>
+     */
+    public Set<String> getSessionIdsForPrincipal(String principal) {
+        final Set<String> ids = new HashSet<String>();
+        for (HazelcastSessionManager manager : getSessionManagers()) {
+            ids.addAll(manager.getSessionIdsForPrincipal(principal));
+        }
+        return ids;
+    }
+
+    /**
+     * Invalidates all sessions authenticated as <code>principal</code>, e.g.
+     * to log a user out everywhere.
+     *
+     * @return the number of sessions invalidated, counting a session ID
+     * shared by several contexts once per context
+     */
+    public int invalidateAllForPrincipal(String principal) {
+        final List<HazelcastSessionManager> managers = getSessionManagers();
+        final List<Set<String>> found = new ArrayList<Set<String>>();
+        final Set<String> ids = new HashSet<String>();
+        for (HazelcastSessionManager manager : managers) {
+            final Set<String> managerIds = new HashSet<String>(manager.getSessionIdsForPrincipal(principal));
+            found.add(managerIds);
+            ids.addAll(managerIds);
+        }
+        for (String id : ids) {
+            // Invalidating a session invalidates the same ID in all contexts
+            invalidateAll(id);
+        }
+        int invalidated = 0;
+        for (int i = 0; i < managers.size(); i++) {
+            for (String id : found.get(i)) {
+                if (managers.get(i).getSession(id) == null) {
+                    invalidated++;
+                }
+            }
+        }
+        return invalidated;
+    }
+
+    private List<HazelcastSessionManager> getSessionManagers() {
+        final List<HazelcastSessionManager> managers = new ArrayList<HazelcastSessionManager>();
+        for (Handler handler : server.getChildHandlersByClass(ContextHandler.class)) {
+            final SessionHandler sessionHandler = ((ContextHandler) handler).getChildHandlerByClass(SessionHandler.class);
+            if (sessionHandler != null) {
+                final SessionManager manager = sessionHandler.getSessionManager();
+                if (manager != null && manager instanceof HazelcastSessionManager) {
+                    managers.add((HazelcastSessionManager) manager);
                 }
             }
         }
+        return managers;
     }
 
     @Override
     public ConcurrentMap<String, SessionData> getSessionMap() {
-        return hazelcastInstance.getMap(SESSION_MAP);
+        return getSessionMap(SESSION_MAP);
     }
 
     @Override
     public ConcurrentMap<String, Object> getAttributeMap() {
-        return hazelcastInstance.getMap(SESSION_ATTRIBUTE_MAP);
+        return getAttributeMap(SESSION_ATTRIBUTE_MAP);
+    }
+
+    @Override
+    public ConcurrentMap<String, SessionData> getSessionMap(String name) {
+        return hazelcastInstance.getMap(name);
+    }
+
+    @Override
+    public ConcurrentMap<String, Object> getAttributeMap(String name) {
+        return hazelcastInstance.getMap(name);
     }
 
     @Override
@@ -176,15 +342,8 @@ public class HazelcastSessionIdManager extends AbstractSessionIdManager implemen
             removeSession(oldClusterId);
             addSession(newClusterId);
 
-            for (Handler handler : server.getChildHandlersByClass(ContextHandler.class)) {
-                final SessionHandler sessionHandler = ((ContextHandler) handler).getChildHandlerByClass(SessionHandler.class);
-                if (sessionHandler != null) {
-                    final SessionManager manager = sessionHandler.getSessionManager();
-
-                    if (manager != null && manager instanceof HazelcastSessionManager) {
-                        ((HazelcastSessionManager) manager).renewSessionId(oldClusterId, oldNodeId, newClusterId, getNodeId(newClusterId, request));
-                    }
-                }
+            for (HazelcastSessionManager manager : getSessionManagers()) {
+                manager.renewSessionId(oldClusterId, oldNodeId, newClusterId, getNodeId(newClusterId, request));
             }
         }
     }
@@ -27,26 +27,48 @@
  */
 package org.signaut.jetty.server.session;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.servlet.http.HttpServletRequest;
 
+import org.eclipse.jetty.security.authentication.SessionAuthentication;
+import org.eclipse.jetty.server.Authentication;
 import org.eclipse.jetty.server.SessionManager;
+import org.eclipse.jetty.server.UserIdentity;
 import org.eclipse.jetty.server.session.AbstractSession;
 import org.eclipse.jetty.server.session.AbstractSessionManager;
 import org.eclipse.jetty.util.log.Log;
 import org.eclipse.jetty.util.log.Logger;
+import org.eclipse.jetty.util.statistic.CounterStatistic;
+
+import com.hazelcast.config.InMemoryFormat;
+import com.hazelcast.config.MapConfig;
+import com.hazelcast.core.IMap;
+import com.hazelcast.map.EntryBackupProcessor;
+import com.hazelcast.map.EntryProcessor;
+import com.hazelcast.query.Predicates;
 
 /**
  * <p>
@@ -72,6 +94,25 @@ public class HazelcastSessionManager extends AbstractSessionManager implements S
     private final ClassLoader hzLoader = getClass().getClassLoader();
     private boolean invalidatesOnRedeploy = false;
     private final HazelcastSessionIdManager hazelcastSessionIdManager;
+    private String sessionMapName = HazelcastSessionIdManager.SESSION_MAP;
+    private String attributeMapName = HazelcastSessionIdManager.SESSION_ATTRIBUTE_MAP;
+    private int sessionLimit = 0;
+    private long maxSessionBytes = 0;
+    private long maxMapMemory = 0;
+    private int evictionPercentage = 10;
+    private final long evictionTaskDelay = 10;
+    private final long accessedUpdateMs = 5000;
+    private static final int EVICTION_FETCH_SIZE = 1000;
+    private ScheduledFuture<?> evictionTask;
+    private volatile int sessionCount;
+    private final AtomicInteger createdSinceCount = new AtomicInteger();
+    private final AtomicBoolean evictionArmed = new AtomicBoolean(true);
+    private String[] localAttributePrefixes = new String[0];
+    private final ConcurrentMap<String, ConcurrentMap<String, Object>> localAttributes =
+            new ConcurrentHashMap<String, ConcurrentMap<String, Object>>();
+    private final CounterStatistic evictedSessions = new CounterStatistic();
+    private final CounterStatistic rejectedSessions = new CounterStatistic();
+    private final CounterStatistic rejectedAttributes = new CounterStatistic();
 
     public HazelcastSessionManager(HazelcastSessionIdManager sessionIdManager) {
         super();
@@ -95,22 +136,203 @@ public class HazelcastSessionManager extends AbstractSessionManager implements S
         this.invalidatesOnRedeploy = invalidatesOnRedeploy;
     }
 
+    public String getSessionMapName() {
+        return sessionMapName;
+    }
+
+    /**
+     * Name of the Hazelcast map holding the session data of this context.
+     * Must be set before the manager is started.
+     */
+    public void setSessionMapName(String sessionMapName) {
+        this.sessionMapName = sessionMapName;
+    }
+
+    public String getAttributeMapName() {
+        return attributeMapName;
+    }
+
+    /**
+     * Name of the Hazelcast map holding the session attributes of this
+     * context. Must be set before the manager is started.
+     */
+    public void setAttributeMapName(String attributeMapName) {
+        this.attributeMapName = attributeMapName;
+    }
+
+    /**
+     * Gives this context its own pair of maps named
+     * <code>prefix.sessionMap</code> and <code>prefix.sessionAttrMap</code>,
+     * so backup count, eviction and in-memory format can be configured per
+     * context in the Hazelcast configuration (e.g. using
+     * <code>&lt;map name="prefix.*"&gt;</code>).
+     */
+    public void setMapNamePrefix(String prefix) {
+        setSessionMapName(prefix + ".sessionMap");
+        setAttributeMapName(prefix + ".sessionAttrMap");
+    }
+
+    public String getLocalAttributePrefixes() {
+        final StringBuilder prefixes = new StringBuilder();
+        for (String prefix : localAttributePrefixes) {
+            if (prefixes.length() > 0) {
+                prefixes.append(',');
+            }
+            prefixes.append(prefix);
+        }
+        return prefixes.toString();
+    }
+
+    /**
+     * Comma separated list of attribute name prefixes for attributes that
+     * are kept on this node only. Such attributes are never written to
+     * Hazelcast, need not be serializable and are lost on failover, so they
+     * should only be used for values that can be rebuilt.
+     */
+    public void setLocalAttributePrefixes(String prefixes) {
+        final List<String> list = new ArrayList<String>();
+        if (prefixes != null) {
+            for (String prefix : prefixes.split(",")) {
+                if (prefix.trim().length() > 0) {
+                    list.add(prefix.trim());
+                }
+            }
+        }
+        this.localAttributePrefixes = list.toArray(new String[list.size()]);
+    }
+
+    private boolean isLocalAttribute(String name) {
+        for (String prefix : localAttributePrefixes) {
+            if (name.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int getSessionLimit() {
+        return sessionLimit;
+    }
+
+    /**
+     * Approximate upper bound on the number of sessions in this context's
+     * session map across the cluster. The cluster-wide count is refreshed by
+     * a background task, which also evicts the least recently accessed
+     * sessions that are not kept alive, each member from the entries it
+     * owns. New sessions are rejected while the limit is exceeded. 0 (the
+     * default) means no limit.
+     */
+    public void setSessionLimit(int sessionLimit) {
+        this.sessionLimit = sessionLimit;
+    }
+
+    public long getMaxSessionBytes() {
+        return maxSessionBytes;
+    }
+
+    /**
+     * Upper bound on the serialized size of all attributes of a single
+     * session. Attributes that would exceed it are rejected. 0 (the default)
+     * means no limit and no size accounting.
+     */
+    public void setMaxSessionBytes(long maxSessionBytes) {
+        this.maxSessionBytes = maxSessionBytes;
+    }
+
+    public long getMaxMapMemory() {
+        return maxMapMemory;
+    }
+
+    /**
+     * Upper bound on the heap cost of the session and attribute entries owned
+     * by this member. Checked by a background task, which evicts the least
+     * recently accessed sessions owned by this member when it is exceeded.
+     * Hazelcast only reports the cost of BINARY maps, so both maps must use
+     * the BINARY in-memory format. 0 (the default) means no limit.
+     */
+    public void setMaxMapMemory(long maxMapMemory) {
+        this.maxMapMemory = maxMapMemory;
+    }
+
+    public int getEvictionPercentage() {
+        return evictionPercentage;
+    }
+
+    /**
+     * Percentage of <code>sessionLimit</code> evicted per run. Eviction
+     * starts when the count gets within this percentage of the limit and
+     * evicts down to twice that distance, so runs are not repeated for every
+     * few new sessions.
+     */
+    public void setEvictionPercentage(int evictionPercentage) {
+        this.evictionPercentage = evictionPercentage;
+    }
+
+    public long getSessionsEvicted() {
+        return evictedSessions.getTotal();
+    }
+
+    public long getSessionsRejected() {
+        return rejectedSessions.getTotal();
+    }
+
+    public long getAttributesRejected() {
+        return rejectedAttributes.getTotal();
+    }
+
+    @Override
+    public void statsReset() {
+        super.statsReset();
+        evictedSessions.reset();
+        rejectedSessions.reset();
+        rejectedAttributes.reset();
+    }
+
     @Override
     public void doStart() throws Exception {
         super.doStart();
-        this.sessionMap = hazelcastSessionIdManager.getSessionMap();
-        this.attributeMap = hazelcastSessionIdManager.getAttributeMap();
+        this.sessionMap = hazelcastSessionIdManager.getSessionMap(sessionMapName);
+        this.attributeMap = hazelcastSessionIdManager.getAttributeMap(attributeMapName);
+        if (sessionMap instanceof IMap) {
+            ((IMap<String, SessionData>) sessionMap).addIndex("principal", false);
+        }
+
+        if (maxMapMemory > 0) {
+            checkBinaryFormat(sessionMapName);
+            checkBinaryFormat(attributeMapName);
+        }
 
         clearScheduler();
         scheduler = Executors.newSingleThreadScheduledExecutor();
         cleanupTask = scheduler.scheduleWithFixedDelay(this, cleanupTaskDelay,
                 cleanupTaskDelay, TimeUnit.SECONDS);
+        if (isEvictionEnabled()) {
+            sessionCount = sessionMap.size();
+            createdSinceCount.set(0);
+            evictionTask = scheduler.scheduleWithFixedDelay(evictionRunner, evictionTaskDelay,
+                    evictionTaskDelay, TimeUnit.SECONDS);
+        }
+    }
+
+    private void checkBinaryFormat(String mapName) {
+        final MapConfig config = hazelcastSessionIdManager.getHazelcastInstance().getConfig().getMapConfig(mapName);
+        if (config.getInMemoryFormat() != InMemoryFormat.BINARY) {
+            throw new IllegalStateException("maxMapMemory requires BINARY in-memory-format for map " + mapName);
+        }
+    }
+
+    private boolean isEvictionEnabled() {
+        return sessionLimit > 0 || maxMapMemory > 0;
     }
 
     private void clearScheduler() {
         if (cleanupTask != null) {
             cleanupTask.cancel(true);
         }
+        if (evictionTask != null) {
+            evictionTask.cancel(true);
+            evictionTask = null;
+        }
         if (scheduler != null) {
             scheduler.shutdown();
         }
@@ -121,6 +343,7 @@ public class HazelcastSessionManager extends AbstractSessionManager implements S
         clearScheduler();
         this.sessionMap = null;
         this.attributeMap = null;
+        localAttributes.clear();
         super.doStop();
     }
 
@@ -144,6 +367,29 @@ public class HazelcastSessionManager extends AbstractSessionManager implements S
         put(sessionMap, clusterSession.getClusterId(), data);
     }
 
+    /**
+     * @return the cluster IDs of all sessions in this context authenticated
+     * as <code>principal</code>
+     */
+    public Set<String> getSessionIdsForPrincipal(String principal) {
+        final ClassLoader cl = Thread.currentThread().getContextClassLoader();
+        try {
+            Thread.currentThread().setContextClassLoader(hzLoader);
+            if (sessionMap instanceof IMap) {
+                return ((IMap<String, SessionData>) sessionMap).keySet(Predicates.equal("principal", principal));
+            }
+            final Set<String> ids = new HashSet<String>();
+            for (Entry<String, SessionData> entry : sessionMap.entrySet()) {
+                if (principal.equals(entry.getValue().getPrincipal())) {
+                    ids.add(entry.getKey());
+                }
+            }
+            return ids;
+        } finally {
+            Thread.currentThread().setContextClassLoader(cl);
+        }
+    }
+
     @Override
     public AbstractSession getSession(String idInCluster) {
         final SessionData data = get(sessionMap, idInCluster);
@@ -165,13 +411,209 @@ public class HazelcastSessionManager extends AbstractSessionManager implements S
 
     @Override
     protected AbstractSession newSession(HttpServletRequest request) {
+        if (sessionLimit > 0) {
+            checkSessionLimit();
+        }
         return new HazelcastSession(request);
     }
 
+    /**
+     * Works on the last known cluster-wide count plus the sessions created on
+     * this node since, so creating a session costs no cluster round trip.
+     */
+    private void checkSessionLimit() {
+        final int estimate = sessionCount + createdSinceCount.incrementAndGet();
+        if (estimate > sessionLimit) {
+            createdSinceCount.decrementAndGet();
+            rejectedSessions.increment();
+            requestEviction();
+            throw new IllegalStateException("Session limit of " + sessionLimit + " reached");
+        }
+        if (estimate > evictionTrigger()) {
+            requestEviction();
+        }
+    }
+
+    private int evictionBatch() {
+        return Math.max(1, sessionLimit * evictionPercentage / 100);
+    }
+
+    /** Session count at which requests start an eviction run */
+    private int evictionTrigger() {
+        return sessionLimit - evictionBatch();
+    }
+
+    /** Session count an eviction run evicts down to */
+    private int evictionTarget() {
+        return Math.max(0, sessionLimit - 2 * evictionBatch());
+    }
+
+    /**
+     * Starts an eviction run unless one has been requested since the count
+     * last dropped below the trigger level. A run that cannot get below it,
+     * e.g. because all sessions are kept alive, is left to the scheduled
+     * task rather than being repeated for every request.
+     */
+    private void requestEviction() {
+        final ScheduledExecutorService executor = scheduler;
+        if (executor != null && evictionArmed.compareAndSet(true, false)) {
+            try {
+                executor.execute(evictionRunner);
+            } catch (RejectedExecutionException e) {
+                evictionArmed.set(true);
+            }
+        }
+    }
+
+    private final Runnable evictionRunner = new Runnable() {
+        @Override
+        public void run() {
+            if (isStopping() || isStopped()) {
+                return;
+            }
+            final Thread thread = Thread.currentThread();
+            final ClassLoader oldLoader = thread.getContextClassLoader();
+            thread.setContextClassLoader(hzLoader);
+            try {
+                enforceLimits();
+            } catch (Exception e) {
+                log.warn("Failed to enforce session limits", e);
+            } finally {
+                thread.setContextClassLoader(oldLoader);
+            }
+            if (sessionCount + createdSinceCount.get() <= evictionTrigger()) {
+                evictionArmed.set(true);
+            }
+        }
+    };
+
+    void enforceLimits() {
+        final ConcurrentMap<String, SessionData> sessionMap = this.sessionMap;
+        final ConcurrentMap<String, Object> attributeMap = this.attributeMap;
+        if (!(sessionMap instanceof IMap) || !(attributeMap instanceof IMap)) {
+            // Not started
+            return;
+        }
+        final IMap<String, SessionData> sessions = (IMap<String, SessionData>) sessionMap;
+        if (sessionLimit > 0) {
+            final int size = sessions.size();
+            createdSinceCount.set(0);
+            final int target = evictionTarget();
+            int evicted = 0;
+            if (size > target) {
+                // Each member evicts its share from the sessions it owns
+                final long owned = sessions.getLocalMapStats().getOwnedEntryCount();
+                evicted = evictLocalSessions(sessions, (int) Math.ceil((size - target) * (double) owned / size));
+            }
+            sessionCount = size - evicted;
+        }
+        if (maxMapMemory > 0) {
+            final long cost = sessions.getLocalMapStats().getOwnedEntryMemoryCost()
+                    + ((IMap<?, ?>) attributeMap).getLocalMapStats().getOwnedEntryMemoryCost();
+            if (cost > maxMapMemory) {
+                final long owned = sessions.getLocalMapStats().getOwnedEntryCount();
+                final int count = (int) Math.ceil(owned * (double) (cost - maxMapMemory) / cost);
+                log.info("Session maps use " + cost + " bytes on this member, evicting " + count + " sessions");
+                evictLocalSessions(sessions, count);
+            }
+        }
+    }
+
+    private static class EvictionCandidate {
+        final String id;
+        final long accessed;
+
+        EvictionCandidate(String id, long accessed) {
+            this.id = id;
+            this.accessed = accessed;
+        }
+    }
+
+    /**
+     * Evicts up to <code>count</code> of the sessions owned by this member,
+     * least recently accessed first. Sessions that are kept alive are never
+     * evicted. Only the <code>count</code> oldest candidates are kept in
+     * memory while searching.
+     *
+     * @return the number of sessions evicted
+     */
+    private int evictLocalSessions(IMap<String, SessionData> sessions, int count) {
+        if (count <= 0) {
+            return 0;
+        }
+        final PriorityQueue<EvictionCandidate> oldest = new PriorityQueue<EvictionCandidate>(count,
+                new Comparator<EvictionCandidate>() {
+                    @Override
+                    public int compare(EvictionCandidate a, EvictionCandidate b) {
+                        // Most recently accessed at the head, so it is replaced first
+                        return a.accessed > b.accessed ? -1 : (a.accessed == b.accessed ? 0 : 1);
+                    }
+                });
+        final List<String> keys = new ArrayList<String>(sessions.localKeySet(Predicates.equal("keepAlive", false)));
+        for (int from = 0; from < keys.size(); from += EVICTION_FETCH_SIZE) {
+            final Set<String> batch = new HashSet<String>(keys.subList(from, Math.min(from + EVICTION_FETCH_SIZE, keys.size())));
+            for (Entry<String, SessionData> entry : sessions.getAll(batch).entrySet()) {
+                final long accessed = entry.getValue().getAccessed();
+                if (oldest.size() < count) {
+                    oldest.add(new EvictionCandidate(entry.getKey(), accessed));
+                } else if (accessed < oldest.peek().accessed) {
+                    oldest.poll();
+                    oldest.add(new EvictionCandidate(entry.getKey(), accessed));
+                }
+            }
+        }
+        int evicted = 0;
+        for (EvictionCandidate candidate : oldest) {
+            log.debug("Evicting session: " + candidate.id);
+            if (removeSession(candidate.id)) {
+                evicted++;
+            }
+        }
+        evictedSessions.add(evicted);
+        return evicted;
+    }
+
+    private static String principalName(Authentication.User user) {
+        final UserIdentity identity = user.getUserIdentity();
+        if (identity == null || identity.getUserPrincipal() == null) {
+            return null;
+        }
+        return identity.getUserPrincipal().getName();
+    }
+
+    private static int sizeOf(Object value) {
+        final CountingOutputStream out = new CountingOutputStream();
+        try (ObjectOutputStream oos = new ObjectOutputStream(out)) {
+            oos.writeObject(value);
+        } catch (IOException e) {
+            // Not java serializable - leave it to Hazelcast to deal with it
+            return 0;
+        }
+        return out.count;
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+        private int count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+
     @Override
     protected boolean removeSession(String idInCluster) {
         log.debug("Removing session:" + idInCluster);
+        localAttributes.remove(idInCluster);
         final SessionData data = get(sessionMap, idInCluster);
+        if (data == null) {
+            return false;
+        }
         for (String key : data.getKeys()) {
             attributeMap.remove(idInCluster + "#" + key);
         }
@@ -190,14 +632,65 @@ public class HazelcastSessionManager extends AbstractSessionManager implements S
             super(HazelcastSessionManager.this, request);
         }
 
+        @Override
+        protected boolean access(long time) {
+            final long lastAccessed = getAccessed();
+            final boolean valid = super.access(time);
+            // Access time is only needed for eviction, and is written at most
+            // every accessedUpdateMs to keep requests from writing to the map
+            if (valid && isEvictionEnabled() && time - lastAccessed >= accessedUpdateMs
+                    && sessionMap instanceof IMap) {
+                final ClassLoader cl = Thread.currentThread().getContextClassLoader();
+                try {
+                    Thread.currentThread().setContextClassLoader(hzLoader);
+                    ((IMap<String, SessionData>) sessionMap).executeOnKey(getClusterId(), new AccessedUpdate(time));
+                } finally {
+                    Thread.currentThread().setContextClassLoader(cl);
+                }
+            }
+            return valid;
+        }
+
         public void setAttribute(String name, Object value) {
+            if (isLocalAttribute(name)) {
+                super.setAttribute(name, value);
+                if (value == null) {
+                    removeLocalAttribute(name);
+                } else {
+                    ConcurrentMap<String, Object> attributes = localAttributes.get(getClusterId());
+                    if (attributes == null) {
+                        final ConcurrentMap<String, Object> created = new ConcurrentHashMap<String, Object>();
+                        attributes = localAttributes.putIfAbsent(getClusterId(), created);
+                        if (attributes == null) {
+                            attributes = created;
+                        }
+                    }
+                    attributes.put(name, value);
+                }
+                return;
+            }
+            final SessionData data = value == null ? null : get(sessionMap, getClusterId());
+            if (data != null && maxSessionBytes > 0) {
+                final int size = sizeOf(value);
+                final Integer previous = data.getAttributeSizes().get(name);
+                final long bytes = data.getAttributeBytes() - (previous == null ? 0 : previous) + size;
+                if (bytes > maxSessionBytes) {
+                    rejectedAttributes.increment();
+                    log.warn("Rejecting attribute " + name + " of session " + getClusterId() + ": " + bytes
+                            + " bytes exceeds limit of " + maxSessionBytes);
+                    throw new IllegalStateException("Session size limit of " + maxSessionBytes + " bytes exceeded");
+                }
+                data.getAttributeSizes().put(name, size);
+            }
             super.setAttribute(name, value);
-            if (value != null) {
-                final SessionData data = get(sessionMap, getClusterId());
+            if (data != null) {
                 data.getKeys().add(name);
                 if (stickySessionKey.equals(name)) {
                     data.setKeepAlive((Boolean) value);
                 }
+                if (SessionAuthentication.__J_AUTHENTICATED.equals(name) && value instanceof Authentication.User) {
+                    data.setPrincipal(principalName((Authentication.User) value));
+                }
                 put(sessionMap, getClusterId(), data);
                 attributeMap.put(getClusterId() + "#" + name, value);
             }
@@ -205,18 +698,30 @@ public class HazelcastSessionManager extends AbstractSessionManager implements S
 
         @Override
         public Object getAttribute(String name) {
+            if (isLocalAttribute(name)) {
+                final Map<String, Object> attributes = localAttributes.get(getClusterId());
+                return attributes == null ? null : attributes.get(name);
+            }
             return attributeMap.get(getClusterId() + "#" + name);
         }
 
         @Override
         public void removeAttribute(String name) {
+            if (isLocalAttribute(name)) {
+                removeLocalAttribute(name);
+                return;
+            }
             final SessionData data = get(sessionMap, getClusterId());
             if (data != null) {
                 if (data.getKeys().contains(name)) {
                     data.getKeys().remove(name);
+                    data.getAttributeSizes().remove(name);
                     if (stickySessionKey.equals(name)) {
                         data.setKeepAlive(false);
                     }
+                    if (SessionAuthentication.__J_AUTHENTICATED.equals(name)) {
+                        data.setPrincipal(null);
+                    }
                     attributeMap.remove(getClusterId() + "#" + name);
                     put(sessionMap, getClusterId(), data);
                 }
@@ -224,9 +729,24 @@ public class HazelcastSessionManager extends AbstractSessionManager implements S
 
         }
 
+        private void removeLocalAttribute(String name) {
+            final Map<String, Object> attributes = localAttributes.get(getClusterId());
+            if (attributes != null) {
+                attributes.remove(name);
+            }
+        }
+
         @Override
         public Enumeration<String> getAttributeNames() {
             final Set<String> keys = get(sessionMap, getClusterId()).getKeys();
+            final Map<String, Object> local = localAttributes.get(getClusterId());
+            if (local != null && !local.isEmpty()) {
+                final Set<String> names = new HashSet<String>(local.keySet());
+                if (keys != null) {
+                    names.addAll(keys);
+                }
+                return Collections.enumeration(names);
+            }
             if (keys == null) {
                 return Collections.enumeration(Collections.<String>emptySet());
             }
@@ -333,7 +853,12 @@ public class HazelcastSessionManager extends AbstractSessionManager implements S
 
         try {
             long now = System.currentTimeMillis();
+            // Local attributes of sessions no longer in the map, e.g. removed
+            // by other nodes, are dropped below. Sessions created during the
+            // scan are not in this snapshot.
+            final Set<String> orphans = new HashSet<String>(localAttributes.keySet());
             for (Entry<String, SessionData> entry : sessionMap.entrySet()) {
+                orphans.remove(entry.getKey());
                 final SessionData data = entry.getValue();
                 if (data.isKeepAlive()) {
                     // Should we put the session into cryostasis?
@@ -346,11 +871,49 @@ public class HazelcastSessionManager extends AbstractSessionManager implements S
                     removeSession(entry.getKey());
                 }
             }
+            for (String idInCluster : orphans) {
+                localAttributes.remove(idInCluster);
+            }
         } finally {
             thread.setContextClassLoader(oldLoader);
         }
     }
 
+    /**
+     * Updates only the access time of a session, on the member owning it, so
+     * concurrent changes to the rest of the session data are not lost.
+     */
+    static class AccessedUpdate implements EntryProcessor<String, SessionData>,
+            EntryBackupProcessor<String, SessionData> {
+
+        private static final long serialVersionUID = 3530478165624913541L;
+        private final long accessed;
+
+        AccessedUpdate(long accessed) {
+            this.accessed = accessed;
+        }
+
+        @Override
+        public Object process(Entry<String, SessionData> entry) {
+            processBackup(entry);
+            return null;
+        }
+
+        @Override
+        public void processBackup(Entry<String, SessionData> entry) {
+            final SessionData data = entry.getValue();
+            if (data != null && data.getAccessed() < accessed) {
+                data.setAccessed(accessed);
+                entry.setValue(data);
+            }
+        }
+
+        @Override
+        public EntryBackupProcessor<String, SessionData> getBackupProcessor() {
+            return this;
+        }
+    }
+
     @Override
     public void renewSessionId(String oldClusterId, String oldNodeId, String newClusterId, String newNodeId) {
         try {
@@ -363,6 +926,10 @@ public class HazelcastSessionManager extends AbstractSessionManager implements S
                 return;
             }
             sessionMap.put(newClusterId, session);
+            final ConcurrentMap<String, Object> attributes = localAttributes.remove(oldClusterId);
+            if (attributes != null) {
+                localAttributes.put(newClusterId, attributes);
+            }
         } catch (Exception e) {
             log.warn("Error renewing session", e);
         }
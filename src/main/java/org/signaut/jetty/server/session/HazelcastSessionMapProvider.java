@@ -34,4 +34,8 @@ interface HazelcastSessionMapProvider {
     ConcurrentMap<String, SessionData> getSessionMap();
 
     ConcurrentMap<String, Object> getAttributeMap();
+
+    ConcurrentMap<String, SessionData> getSessionMap(String name);
+
+    ConcurrentMap<String, Object> getAttributeMap(String name);
 }
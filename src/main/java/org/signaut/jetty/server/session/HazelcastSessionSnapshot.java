@@ -0,0 +1,380 @@
+/*
+ Copyright (c) 2010, Jesper André Lyngesen Pedersen
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions are
+ met:
+
+ - Redistributions of source code must retain the above copyright
+ notice, this list of conditions and the following disclaimer.
+
+ - Redistributions in binary form must reproduce the above copyright
+ notice, this list of conditions and the following disclaimer in the
+ documentation and/or other materials provided with the distribution.
+
+ THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.signaut.jetty.server.session;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
+import com.hazelcast.core.PartitionService;
+import com.hazelcast.nio.serialization.HazelcastSerializationException;
+
+/**
+ * <p>
+ * Streams the sessions of a session map and its attribute map to and from a
+ * compressed binary snapshot, e.g. to move sessions to a new cluster.
+ * </p>
+ *
+ * Sessions are exported partition by partition in batches, so only the
+ * session IDs and a single batch are held in memory. Imports are written
+ * with batched puts from a number of threads. Attribute values are
+ * deserialized on the way, so the application classes must be visible to
+ * the context class loader.
+ *
+ * @author jalp
+ *
+ */
+public class HazelcastSessionSnapshot {
+
+    private static final String MAGIC = "signaut.sessionSnapshot";
+    // 2: attribute values are written as length prefixed byte arrays
+    private static final int VERSION = 2;
+
+    private final Logger log = Log.getLogger(getClass());
+    private final HazelcastInstance hazelcastInstance;
+    private String sessionMapName = HazelcastSessionIdManager.SESSION_MAP;
+    private String attributeMapName = HazelcastSessionIdManager.SESSION_ATTRIBUTE_MAP;
+    private int batchSize = 500;
+    private int importThreads = 4;
+
+    public HazelcastSessionSnapshot(HazelcastSessionIdManager sessionIdManager) {
+        this.hazelcastInstance = sessionIdManager.getHazelcastInstance();
+    }
+
+    public String getSessionMapName() {
+        return sessionMapName;
+    }
+
+    public void setSessionMapName(String sessionMapName) {
+        this.sessionMapName = sessionMapName;
+    }
+
+    public String getAttributeMapName() {
+        return attributeMapName;
+    }
+
+    public void setAttributeMapName(String attributeMapName) {
+        this.attributeMapName = attributeMapName;
+    }
+
+    /**
+     * Same naming as {@link HazelcastSessionManager#setMapNamePrefix(String)}
+     */
+    public void setMapNamePrefix(String prefix) {
+        setSessionMapName(prefix + ".sessionMap");
+        setAttributeMapName(prefix + ".sessionAttrMap");
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * @throws IllegalArgumentException if not positive
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("Batch size must be positive, got " + batchSize);
+        }
+        this.batchSize = batchSize;
+    }
+
+    public int getImportThreads() {
+        return importThreads;
+    }
+
+    /**
+     * @throws IllegalArgumentException if not positive
+     */
+    public void setImportThreads(int importThreads) {
+        if (importThreads <= 0) {
+            throw new IllegalArgumentException("Import threads must be positive, got " + importThreads);
+        }
+        this.importThreads = importThreads;
+    }
+
+    /**
+     * Writes all sessions and their attributes to <code>out</code>. The
+     * stream is finished but not closed.
+     *
+     * @return the number of sessions exported
+     */
+    public long exportSessions(OutputStream out) throws IOException {
+        final IMap<String, SessionData> sessionMap = hazelcastInstance.getMap(sessionMapName);
+        final IMap<String, Object> attributeMap = hazelcastInstance.getMap(attributeMapName);
+        final PartitionService partitionService = hazelcastInstance.getPartitionService();
+
+        final Map<Integer, List<String>> partitions = new TreeMap<Integer, List<String>>();
+        for (String id : sessionMap.keySet()) {
+            final Integer partition = partitionService.getPartition(id).getPartitionId();
+            List<String> ids = partitions.get(partition);
+            if (ids == null) {
+                ids = new ArrayList<String>();
+                partitions.put(partition, ids);
+            }
+            ids.add(id);
+        }
+
+        final GZIPOutputStream zip = new GZIPOutputStream(new NonClosingOutputStream(out));
+        final ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(zip));
+        oos.writeUTF(MAGIC);
+        oos.writeInt(VERSION);
+        long count = 0;
+        for (Map.Entry<Integer, List<String>> partition : partitions.entrySet()) {
+            final List<String> ids = partition.getValue();
+            for (int from = 0; from < ids.size(); from += batchSize) {
+                final Set<String> batch = new HashSet<String>(ids.subList(from, Math.min(from + batchSize, ids.size())));
+                final Map<String, SessionData> sessions = sessionMap.getAll(batch);
+                final Set<String> attributeKeys = new HashSet<String>();
+                for (Map.Entry<String, SessionData> session : sessions.entrySet()) {
+                    for (String name : session.getValue().getKeys()) {
+                        attributeKeys.add(session.getKey() + "#" + name);
+                    }
+                }
+                final Map<String, Object> attributes;
+                try {
+                    attributes = attributeMap.getAll(attributeKeys);
+                } catch (HazelcastSerializationException e) {
+                    throw new IOException("Failed to read attributes of sessions " + sessions.keySet()
+                            + " - are the application classes visible to the context class loader?", e);
+                }
+                for (Map.Entry<String, SessionData> session : sessions.entrySet()) {
+                    writeSession(oos, session.getKey(), session.getValue(), attributes);
+                    count++;
+                }
+                // Do not keep references to what has already been written
+                oos.reset();
+            }
+            partition.setValue(null);
+        }
+        oos.writeBoolean(false);
+        oos.flush();
+        zip.finish();
+        oos.close();
+        log.info("Exported " + count + " sessions from " + sessionMapName);
+        return count;
+    }
+
+    private void writeSession(ObjectOutputStream oos, String id, SessionData data, Map<String, Object> attributes)
+            throws IOException {
+        final Map<String, Object> values = new HashMap<String, Object>();
+        for (String name : data.getKeys()) {
+            final Object value = attributes.get(id + "#" + name);
+            if (value != null) {
+                values.put(name, value);
+            }
+        }
+        oos.writeBoolean(true);
+        oos.writeUTF(id);
+        oos.writeObject(data);
+        oos.writeInt(values.size());
+        for (Map.Entry<String, Object> value : values.entrySet()) {
+            final byte[] bytes = serialize(id, value.getKey(), value.getValue());
+            oos.writeUTF(value.getKey());
+            oos.writeInt(bytes.length);
+            oos.write(bytes);
+        }
+    }
+
+    /**
+     * Serializes a value on its own, so a value that cannot be written fails
+     * with its key instead of leaving a corrupt stream behind.
+     */
+    private static byte[] serialize(String id, String name, Object value) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(value);
+        } catch (NotSerializableException e) {
+            throw new IOException("Attribute " + name + " of session " + id + " is not java.io.Serializable ("
+                    + value.getClass().getName() + ")", e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Object deserialize(String id, String name, byte[] bytes) throws IOException {
+        try (ObjectInputStream in = new ContextObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return in.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Class of attribute " + name + " of session " + id + " not found", e);
+        }
+    }
+
+    /**
+     * Reads a snapshot written by {@link #exportSessions(OutputStream)} and
+     * puts its sessions into the maps of this cluster. The stream is not
+     * closed.
+     *
+     * @return the number of sessions imported
+     */
+    public long importSessions(InputStream in) throws IOException {
+        final IMap<String, SessionData> sessionMap = hazelcastInstance.getMap(sessionMapName);
+        final IMap<String, Object> attributeMap = hazelcastInstance.getMap(attributeMapName);
+        final Set<String> sessionIds = hazelcastInstance.getSet(HazelcastSessionIdManager.SESSION_ID_SET);
+
+        final ObjectInputStream ois = new ContextObjectInputStream(
+                new BufferedInputStream(new GZIPInputStream(in)));
+        if (!MAGIC.equals(ois.readUTF()) || ois.readInt() != VERSION) {
+            throw new IOException("Not a session snapshot");
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(importThreads);
+        // Bounds the number of batches read ahead of the writers
+        final Semaphore pending = new Semaphore(importThreads * 2);
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+        long count = 0;
+        try {
+            Map<String, SessionData> sessions = new HashMap<String, SessionData>();
+            Map<String, Object> attributes = new HashMap<String, Object>();
+            while (ois.readBoolean()) {
+                final String id = ois.readUTF();
+                final SessionData data = (SessionData) ois.readObject();
+                final int attributeCount = ois.readInt();
+                for (int i = 0; i < attributeCount; i++) {
+                    final String name = ois.readUTF();
+                    final byte[] bytes = new byte[ois.readInt()];
+                    ois.readFully(bytes);
+                    attributes.put(id + "#" + name, deserialize(id, name, bytes));
+                }
+                sessions.put(id, data);
+                count++;
+                if (sessions.size() >= batchSize) {
+                    submit(executor, pending, failure, sessionMap, attributeMap, sessionIds, sessions, attributes);
+                    sessions = new HashMap<String, SessionData>();
+                    attributes = new HashMap<String, Object>();
+                }
+            }
+            if (!sessions.isEmpty()) {
+                submit(executor, pending, failure, sessionMap, attributeMap, sessionIds, sessions, attributes);
+            }
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Failed to read session snapshot", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while importing sessions", e);
+        } finally {
+            executor.shutdownNow();
+        }
+        if (failure.get() != null) {
+            throw new IOException("Failed to import sessions", failure.get());
+        }
+        log.info("Imported " + count + " sessions into " + sessionMapName);
+        return count;
+    }
+
+    private void submit(ExecutorService executor, final Semaphore pending, final AtomicReference<Exception> failure,
+                        final IMap<String, SessionData> sessionMap, final IMap<String, Object> attributeMap,
+                        final Set<String> sessionIds, final Map<String, SessionData> sessions,
+                        final Map<String, Object> attributes) throws InterruptedException, IOException {
+        if (failure.get() != null) {
+            throw new IOException("Failed to import sessions", failure.get());
+        }
+        pending.acquire();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // Attributes first so no session is visible without them
+                    attributeMap.putAll(attributes);
+                    sessionMap.putAll(sessions);
+                    sessionIds.addAll(sessions.keySet());
+                } catch (Exception e) {
+                    failure.compareAndSet(null, e);
+                } finally {
+                    pending.release();
+                }
+            }
+        });
+    }
+
+    private static class ContextObjectInputStream extends ObjectInputStream {
+
+        ContextObjectInputStream(InputStream in) throws IOException {
+            super(in);
+        }
+
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+            final ClassLoader loader = Thread.currentThread().getContextClassLoader();
+            if (loader != null) {
+                try {
+                    return Class.forName(desc.getName(), false, loader);
+                } catch (ClassNotFoundException e) {
+                    // Fall back to the default resolution below
+                }
+            }
+            return super.resolveClass(desc);
+        }
+    }
+
+    private static class NonClosingOutputStream extends FilterOutputStream {
+
+        NonClosingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
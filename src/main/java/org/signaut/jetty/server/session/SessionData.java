@@ -28,7 +28,9 @@
 package org.signaut.jetty.server.session;
 
 import java.io.Serializable;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 
 class SessionData implements Serializable {
@@ -39,8 +41,10 @@ class SessionData implements Serializable {
     private long maxIdleMs;
     private long accessed;
     private boolean keepAlive;
+    private String principal;
 
     private Set<String> keys = new HashSet<String>();
+    private Map<String, Integer> attributeSizes = new HashMap<String, Integer>();
 
     public long getCreated() {
         return created;
@@ -83,6 +87,38 @@ class SessionData implements Serializable {
         this.keys = keys;
     }
 
+    /**
+     * Name of the authenticated user of the session. Indexed in the session
+     * map.
+     */
+    public String getPrincipal() {
+        return principal;
+    }
+
+    public void setPrincipal(String principal) {
+        this.principal = principal;
+    }
+
+    public Map<String, Integer> getAttributeSizes() {
+        if (attributeSizes == null) {
+            // Data written before attribute sizes were tracked
+            attributeSizes = new HashMap<String, Integer>();
+        }
+        return attributeSizes;
+    }
+
+    public void setAttributeSizes(Map<String, Integer> attributeSizes) {
+        this.attributeSizes = attributeSizes;
+    }
+
+    public long getAttributeBytes() {
+        long bytes = 0;
+        for (Integer size : getAttributeSizes().values()) {
+            bytes += size;
+        }
+        return bytes;
+    }
+
     public void setKeepAlive(boolean keepAlive) {
         this.keepAlive = keepAlive;
     }
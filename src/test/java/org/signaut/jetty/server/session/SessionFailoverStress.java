@@ -0,0 +1,273 @@
+package org.signaut.jetty.server.session;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.session.AbstractSession;
+import org.junit.Assert;
+import org.junit.Test;
+import org.signaut.common.hazelcast.HazelcastFactory;
+
+import com.hazelcast.core.HazelcastInstance;
+
+import static org.mockito.Mockito.*;
+
+/**
+ * Stress harness running several Hazelcast members and session managers in
+ * one JVM while members are killed and added. Not run as part of the normal
+ * build, use <code>mvn test -Dtest=SessionFailoverStress</code>.
+ *
+ * Tunable with the system properties <code>stress.members</code>,
+ * <code>stress.threads</code>, <code>stress.sessions</code>,
+ * <code>stress.seconds</code> and <code>stress.chaosSeconds</code>.
+ *
+ * Latencies are reported per chaos interval, so the intervals following a
+ * kill/add can be compared with the first, undisturbed one.
+ */
+public class SessionFailoverStress {
+
+    private static final String COUNTER = "counter";
+
+    private final int members = Integer.getInteger("stress.members", 3);
+    private final int threads = Integer.getInteger("stress.threads", 8);
+    private final int sessions = Integer.getInteger("stress.sessions", 200);
+    private final int seconds = Integer.getInteger("stress.seconds", 60);
+    private final int chaosSeconds = Integer.getInteger("stress.chaosSeconds", 10);
+
+    private final List<Node> nodes = new CopyOnWriteArrayList<Node>();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong lostUpdates = new AtomicLong();
+    private final AtomicLong lostSessions = new AtomicLong();
+    private final AtomicLong killed = new AtomicLong();
+    private final AtomicLong added = new AtomicLong();
+    private volatile boolean running = true;
+    private volatile Histogram interval = new Histogram();
+
+    private static class Node {
+        final HazelcastInstance hazelcastInstance;
+        final HazelcastSessionIdManager idManager;
+        final HazelcastSessionManager sessionManager;
+
+        Node(int index) throws Exception {
+            hazelcastInstance = HazelcastFactory.loadHazelcastInstance("/test-session-cluster.xml",
+                                                                       SessionFailoverStress.class);
+            idManager = new HazelcastSessionIdManager(new Server(), "worker" + index, hazelcastInstance);
+            sessionManager = new HazelcastSessionManager(idManager);
+            sessionManager.setMapNamePrefix("stress");
+            idManager.start();
+            sessionManager.start();
+        }
+
+        void kill() {
+            try {
+                sessionManager.stop();
+                idManager.stop();
+            } catch (Exception e) {
+                // The member is going away anyway
+            }
+            hazelcastInstance.getLifecycleService().terminate();
+        }
+    }
+
+    /**
+     * Fixed size latency histogram in microseconds. Values below 64 get a
+     * bucket each, larger values 32 buckets per power of two, so percentiles
+     * are within about 3% without keeping the samples.
+     */
+    private static class Histogram {
+        private static final int LINEAR = 64;
+        private static final int SUB_BUCKETS = 32;
+
+        private final AtomicLongArray counts = new AtomicLongArray(LINEAR + (63 - 6) * SUB_BUCKETS);
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long value) {
+            counts.incrementAndGet(index(Math.max(0, value)));
+            long current;
+            while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+                // retry
+            }
+        }
+
+        private static int index(long value) {
+            if (value < LINEAR) {
+                return (int) value;
+            }
+            final int exponent = 63 - Long.numberOfLeadingZeros(value);
+            final int shift = exponent - 5;
+            return LINEAR + (exponent - 6) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+        }
+
+        /** The largest value falling into the bucket */
+        private static long upperBound(int index) {
+            if (index < LINEAR) {
+                return index;
+            }
+            final int exponent = (index - LINEAR) / SUB_BUCKETS + 6;
+            final long top = (index - LINEAR) % SUB_BUCKETS + SUB_BUCKETS;
+            return ((top + 1) << (exponent - 5)) - 1;
+        }
+
+        long count() {
+            long count = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                count += counts.get(i);
+            }
+            return count;
+        }
+
+        long percentile(int percentile) {
+            final long rank = (long) Math.ceil(percentile / 100.0 * count());
+            long seen = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                seen += counts.get(i);
+                if (seen >= rank && seen > 0) {
+                    return Math.min(upperBound(i), max.get());
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        public String toString() {
+            return count() + " requests, latency us p50/p90/p99/max: " + percentile(50) + "/" + percentile(90) + "/"
+                    + percentile(99) + "/" + max.get();
+        }
+    }
+
+    /** A simulated user with a session and the counter value it expects */
+    private static class User {
+        final String clusterId;
+        int expected;
+
+        User(String clusterId) {
+            this.clusterId = clusterId;
+        }
+    }
+
+    @Test
+    public void stress() throws Exception {
+        int nodeIndex = 0;
+        for (; nodeIndex < members; nodeIndex++) {
+            nodes.add(new Node(nodeIndex));
+        }
+
+        final HttpServletRequest request = mock(HttpServletRequest.class);
+        final List<User> users = new ArrayList<User>();
+        for (int i = 0; i < sessions; i++) {
+            final HazelcastSessionManager manager = nodes.get(i % nodes.size()).sessionManager;
+            final HazelcastSessionManager.HazelcastSession session =
+                    (HazelcastSessionManager.HazelcastSession) manager.newHttpSession(request);
+            session.setAttribute(COUNTER, 0);
+            users.add(new User(session.getClusterId()));
+        }
+
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            // Each thread owns a slice of the users so expected values are not shared
+            final List<User> slice = new ArrayList<User>();
+            for (int i = t; i < users.size(); i += threads) {
+                slice.add(users.get(i));
+            }
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        drive(slice);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }, "stress-" + t).start();
+        }
+
+        final Random random = new Random();
+        final List<String> intervals = new ArrayList<String>();
+        String event = "start";
+        final long start = System.currentTimeMillis();
+        final long end = start + seconds * 1000L;
+        while (System.currentTimeMillis() < end) {
+            Thread.sleep(Math.min(chaosSeconds * 1000L, Math.max(0, end - System.currentTimeMillis())));
+            intervals.add("After " + event + ": " + swapInterval());
+            if (System.currentTimeMillis() >= end) {
+                break;
+            }
+            event = "add";
+            if (nodes.size() > 1) {
+                final Node victim = nodes.remove(random.nextInt(nodes.size()));
+                victim.kill();
+                killed.incrementAndGet();
+                event = "kill/add";
+            }
+            nodes.add(new Node(nodeIndex++));
+            added.incrementAndGet();
+        }
+        running = false;
+        Assert.assertTrue("Workers did not stop", done.await(60, TimeUnit.SECONDS));
+        final long elapsed = System.currentTimeMillis() - start;
+        final Histogram tail = swapInterval();
+        if (tail.count() > 0) {
+            intervals.add("Shutdown: " + tail);
+        }
+
+        System.out.println("Members killed/added: " + killed + "/" + added);
+        System.out.println("Requests: " + requests + " in " + elapsed + " ms ("
+                + (requests.get() * 1000 / Math.max(1, elapsed)) + " req/s)");
+        for (String line : intervals) {
+            System.out.println(line);
+        }
+        System.out.println("Errors: " + errors + ", lost updates: " + lostUpdates + ", lost sessions: " + lostSessions);
+
+        for (Node node : nodes) {
+            node.kill();
+        }
+        Assert.assertTrue("No requests completed", requests.get() > 0);
+    }
+
+    private Histogram swapInterval() {
+        final Histogram previous = interval;
+        interval = new Histogram();
+        return previous;
+    }
+
+    private void drive(List<User> users) {
+        final Random random = new Random();
+        final List<User> live = new ArrayList<User>(users);
+        while (running && !live.isEmpty()) {
+            final User user = live.get(random.nextInt(live.size()));
+            final List<Node> current = new ArrayList<Node>(nodes);
+            final Node node = current.get(random.nextInt(current.size()));
+            final long begin = System.nanoTime();
+            try {
+                final AbstractSession session = node.sessionManager.getSession(user.clusterId);
+                if (session == null) {
+                    lostSessions.incrementAndGet();
+                    live.remove(user);
+                    continue;
+                }
+                final Object counter = session.getAttribute(COUNTER);
+                if (counter == null || (Integer) counter != user.expected) {
+                    lostUpdates.incrementAndGet();
+                }
+                final int next = user.expected + 1;
+                session.setAttribute(COUNTER, next);
+                user.expected = next;
+                interval.record((System.nanoTime() - begin) / 1000);
+                requests.incrementAndGet();
+            } catch (Exception e) {
+                // Typically a request against a member that is being killed
+                errors.incrementAndGet();
+            }
+        }
+    }
+}
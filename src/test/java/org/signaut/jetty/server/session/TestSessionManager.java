@@ -1,16 +1,58 @@
 package org.signaut.jetty.server.session;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpSession;
 
+import org.eclipse.jetty.security.authentication.SessionAuthentication;
+import org.eclipse.jetty.server.Authentication;
+import org.eclipse.jetty.server.Handler;
 import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.UserIdentity;
+import org.eclipse.jetty.server.handler.ContextHandler;
+import org.eclipse.jetty.server.handler.HandlerCollection;
+import org.eclipse.jetty.server.session.AbstractSession;
+import org.eclipse.jetty.server.session.SessionHandler;
+import org.junit.AfterClass;
 import org.junit.Assert;
+import org.junit.BeforeClass;
 import org.junit.Test;
 import org.signaut.common.hazelcast.HazelcastFactory;
+
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.HazelcastInstance;
+
 import static org.mockito.Mockito.*;
 
 public class TestSessionManager {
 
+    private static HazelcastInstance hazelcastInstance;
+
+    @BeforeClass
+    public static void startHazelcast() {
+        hazelcastInstance = HazelcastFactory.loadHazelcastInstance("/test-session-cluster.xml", TestSessionManager.class);
+    }
+
+    @AfterClass
+    public static void stopHazelcast() {
+        hazelcastInstance.getLifecycleService().shutdown();
+    }
+
     @Test
     public void testIdManager() throws Exception {
         final HazelcastFactory hazelcastFactory = new HazelcastFactory();
@@ -30,4 +72,290 @@ public class TestSessionManager {
         sessionManager.stop();
         idManager.stop();
     }
+
+    @Test
+    public void testMapNamePrefix() throws Exception {
+        final Server server = new Server();
+        HazelcastSessionIdManager idManager = new HazelcastSessionIdManager(server, "idWorker", hazelcastInstance);
+        HazelcastSessionManager appManager = new HazelcastSessionManager(idManager);
+        appManager.setMapNamePrefix("test.app");
+        HazelcastSessionManager otherManager = new HazelcastSessionManager(idManager);
+
+        idManager.start();
+        appManager.start();
+        otherManager.start();
+        final HttpServletRequest request = mock(HttpServletRequest.class);
+        HazelcastSessionManager.HazelcastSession session =
+                (HazelcastSessionManager.HazelcastSession) appManager.newHttpSession(request);
+        session.setAttribute("name", "value");
+        Assert.assertEquals("value", session.getAttribute("name"));
+        Assert.assertTrue("Not in context map", hazelcastInstance.getMap("test.app.sessionMap").containsKey(session.getClusterId()));
+        Assert.assertNull("Leaked into shared map", otherManager.getSession(session.getClusterId()));
+        otherManager.stop();
+        appManager.stop();
+        idManager.stop();
+    }
+
+    @Test
+    public void testSessionLimits() throws Exception {
+        // Every member evicts from the sessions it owns, so run a manager on each
+        final List<HazelcastSessionIdManager> idManagers = new ArrayList<HazelcastSessionIdManager>();
+        final List<HazelcastSessionManager> managers = new ArrayList<HazelcastSessionManager>();
+        for (HazelcastInstance instance : Hazelcast.getAllHazelcastInstances()) {
+            HazelcastSessionIdManager idManager = new HazelcastSessionIdManager(new Server(), "idWorker", instance);
+            HazelcastSessionManager manager = new HazelcastSessionManager(idManager);
+            manager.setMapNamePrefix("test.limits");
+            manager.setSessionLimit(3);
+            manager.setEvictionPercentage(34);
+            manager.setMaxSessionBytes(1024);
+            idManager.start();
+            manager.start();
+            idManagers.add(idManager);
+            managers.add(manager);
+        }
+        final HazelcastSessionManager sessionManager = managers.get(0);
+
+        final HttpServletRequest request = mock(HttpServletRequest.class);
+        sessionManager.newHttpSession(request);
+        HazelcastSessionManager.HazelcastSession sticky =
+                (HazelcastSessionManager.HazelcastSession) sessionManager.newHttpSession(request);
+        sticky.setAttribute(sessionManager.getStickySessionKey(), true);
+        sessionManager.newHttpSession(request);
+        long evicted = 0;
+        for (HazelcastSessionManager manager : managers) {
+            manager.enforceLimits();
+        }
+        for (HazelcastSessionManager manager : managers) {
+            evicted += manager.getSessionsEvicted();
+        }
+        Assert.assertTrue("Not evicted down to the target", hazelcastInstance.getMap("test.limits.sessionMap").size() <= 1);
+        Assert.assertNotNull("Sticky session evicted", sessionManager.getSession(sticky.getClusterId()));
+        Assert.assertTrue("Nothing evicted", evicted >= 1);
+
+        try {
+            sticky.setAttribute("big", new byte[2048]);
+            Assert.fail("Oversized attribute accepted");
+        } catch (IllegalStateException e) {
+            Assert.assertEquals(1, sessionManager.getAttributesRejected());
+        }
+        sticky.setAttribute("small", new byte[16]);
+        Assert.assertNotNull(sticky.getAttribute("small"));
+
+        // Sticky sessions cannot be evicted, so the limit must reject some
+        for (int i = 0; i < 10; i++) {
+            try {
+                sessionManager.newHttpSession(request).setAttribute(sessionManager.getStickySessionKey(), true);
+            } catch (IllegalStateException e) {
+                // Expected once the limit is reached
+            }
+        }
+        Assert.assertTrue("No sessions rejected", sessionManager.getSessionsRejected() > 0);
+        for (int i = 0; i < managers.size(); i++) {
+            managers.get(i).stop();
+            idManagers.get(i).stop();
+        }
+    }
+
+    @Test
+    public void testLocalAttributes() throws Exception {
+        final Server server = new Server();
+        HazelcastSessionIdManager idManager = new HazelcastSessionIdManager(server, "idWorker", hazelcastInstance);
+        HazelcastSessionManager sessionManager = new HazelcastSessionManager(idManager);
+        sessionManager.setMapNamePrefix("test.local");
+        sessionManager.setLocalAttributePrefixes("local., cache.");
+
+        idManager.start();
+        sessionManager.start();
+        final HttpServletRequest request = mock(HttpServletRequest.class);
+        HazelcastSessionManager.HazelcastSession session =
+                (HazelcastSessionManager.HazelcastSession) sessionManager.newHttpSession(request);
+        final Object notSerializable = new Object();
+        session.setAttribute("cache.helper", notSerializable);
+        session.setAttribute("shared", "value");
+        Assert.assertSame(notSerializable, sessionManager.getSession(session.getClusterId()).getAttribute("cache.helper"));
+        Assert.assertFalse("Local attribute replicated",
+                hazelcastInstance.getMap("test.local.sessionAttrMap").containsKey(session.getClusterId() + "#cache.helper"));
+        Assert.assertTrue(Collections.list(session.getAttributeNames()).containsAll(Arrays.asList("cache.helper", "shared")));
+        session.removeAttribute("cache.helper");
+        Assert.assertNull(session.getAttribute("cache.helper"));
+        sessionManager.stop();
+        idManager.stop();
+    }
+
+    @Test
+    public void testLocalIdGeneration() throws Exception {
+        final Server server = new Server();
+        HazelcastSessionIdManager idManager = new HazelcastSessionIdManager(server, "idWorker", hazelcastInstance);
+        try {
+            idManager.setIdEntropyBytes(2);
+            Assert.fail("Guessable id length accepted");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+        idManager.setIdEntropyBytes(16);
+
+        idManager.start();
+        final Set<String> ids = new HashSet<String>();
+        for (int i = 0; i < 10000; i++) {
+            final String id = idManager.newSessionId(i);
+            Assert.assertTrue("Unexpected id: " + id, id.startsWith("idWorker") && id.matches("[a-zA-Z0-9-]+"));
+            Assert.assertTrue("Duplicate id: " + id, ids.add(id));
+        }
+
+        // Requested ids known in the cluster are reused
+        final HttpServletRequest request = mock(HttpServletRequest.class);
+        final String existing = idManager.newSessionId(request, System.currentTimeMillis());
+        hazelcastInstance.getSet(HazelcastSessionIdManager.SESSION_ID_SET).add(existing);
+        final HttpServletRequest returning = mock(HttpServletRequest.class);
+        when(returning.getRequestedSessionId()).thenReturn(existing + ".idWorker");
+        Assert.assertEquals(existing, idManager.newSessionId(returning, System.currentTimeMillis()));
+
+        // Generation must not wait for the manager's monitor
+        final HazelcastSessionIdManager lockedManager = idManager;
+        final CountDownLatch locked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Thread holder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (lockedManager) {
+                    locked.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        });
+        holder.start();
+        locked.await();
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final List<Future<String>> futures = new ArrayList<Future<String>>();
+            for (int i = 0; i < 4; i++) {
+                futures.add(executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() {
+                        return lockedManager.newSessionId(mock(HttpServletRequest.class), System.currentTimeMillis());
+                    }
+                }));
+            }
+            for (Future<String> future : futures) {
+                Assert.assertNotNull(future.get(5, TimeUnit.SECONDS));
+            }
+        } finally {
+            release.countDown();
+            executor.shutdown();
+        }
+        idManager.stop();
+    }
+
+    @Test
+    public void testPrincipalLookup() throws Exception {
+        final Server server = new Server();
+        HazelcastSessionIdManager idManager = new HazelcastSessionIdManager(server, "idWorker", hazelcastInstance);
+        HazelcastSessionManager sessionManager = new HazelcastSessionManager(idManager);
+        sessionManager.setMapNamePrefix("test.principal");
+        HazelcastSessionManager otherManager = new HazelcastSessionManager(idManager);
+        otherManager.setMapNamePrefix("test.principal.other");
+        final ContextHandler context = new ContextHandler();
+        context.setHandler(new SessionHandler(sessionManager));
+        final ContextHandler otherContext = new ContextHandler();
+        otherContext.setHandler(new SessionHandler(otherManager));
+        final HandlerCollection contexts = new HandlerCollection();
+        contexts.setHandlers(new Handler[] {context, otherContext});
+        server.setHandler(contexts);
+
+        idManager.start();
+        sessionManager.start();
+        otherManager.start();
+        final HttpServletRequest request = mock(HttpServletRequest.class);
+        final HttpSession alice = sessionManager.newHttpSession(request);
+        final HttpSession otherAlice = sessionManager.newHttpSession(request);
+        final HttpSession bob = sessionManager.newHttpSession(request);
+        // The same session ID in the second context, as for a returning client
+        final HttpServletRequest returning = mock(HttpServletRequest.class);
+        when(returning.getRequestedSessionId()).thenReturn(alice.getId());
+        final HttpSession aliceInOther = otherManager.newHttpSession(returning);
+        Assert.assertEquals(alice.getId(), aliceInOther.getId());
+        alice.setAttribute(SessionAuthentication.__J_AUTHENTICATED, user("alice"));
+        otherAlice.setAttribute(SessionAuthentication.__J_AUTHENTICATED, user("alice"));
+        aliceInOther.setAttribute(SessionAuthentication.__J_AUTHENTICATED, user("alice"));
+        bob.setAttribute(SessionAuthentication.__J_AUTHENTICATED, user("bob"));
+        final HttpSession anonymous = sessionManager.newHttpSession(request);
+        final Authentication.User noIdentity = mock(Authentication.User.class, withSettings().serializable());
+        anonymous.setAttribute(SessionAuthentication.__J_AUTHENTICATED, noIdentity);
+
+        Assert.assertEquals(2, idManager.getSessionIdsForPrincipal("alice").size());
+        Assert.assertEquals(3, idManager.invalidateAllForPrincipal("alice"));
+        Assert.assertTrue(idManager.getSessionIdsForPrincipal("alice").isEmpty());
+        Assert.assertEquals(1, idManager.getSessionIdsForPrincipal("bob").size());
+        otherManager.stop();
+        sessionManager.stop();
+        idManager.stop();
+    }
+
+    private static Authentication.User user(String name) {
+        final Principal principal = mock(Principal.class, withSettings().serializable());
+        when(principal.getName()).thenReturn(name);
+        final UserIdentity identity = mock(UserIdentity.class, withSettings().serializable());
+        when(identity.getUserPrincipal()).thenReturn(principal);
+        final Authentication.User user = mock(Authentication.User.class, withSettings().serializable());
+        when(user.getUserIdentity()).thenReturn(identity);
+        return user;
+    }
+
+    @Test
+    public void testSnapshot() throws Exception {
+        final Server server = new Server();
+        HazelcastSessionIdManager idManager = new HazelcastSessionIdManager(server, "idWorker", hazelcastInstance);
+        HazelcastSessionManager sessionManager = new HazelcastSessionManager(idManager);
+        sessionManager.setMapNamePrefix("test.export");
+
+        idManager.start();
+        sessionManager.start();
+        final HttpServletRequest request = mock(HttpServletRequest.class);
+        final List<String> ids = new ArrayList<String>();
+        for (int i = 0; i < 25; i++) {
+            final HazelcastSessionManager.HazelcastSession session =
+                    (HazelcastSessionManager.HazelcastSession) sessionManager.newHttpSession(request);
+            session.setAttribute("index", i);
+            ids.add(session.getClusterId());
+        }
+
+        final HazelcastSessionSnapshot exporter = new HazelcastSessionSnapshot(idManager);
+        exporter.setMapNamePrefix("test.export");
+        exporter.setBatchSize(4);
+        try {
+            exporter.setBatchSize(0);
+            Assert.fail("Batch size of 0 accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            exporter.setImportThreads(-1);
+            Assert.fail("Negative import threads accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Assert.assertEquals(25, exporter.exportSessions(out));
+
+        final HazelcastSessionSnapshot importer = new HazelcastSessionSnapshot(idManager);
+        importer.setMapNamePrefix("test.import");
+        importer.setBatchSize(4);
+        Assert.assertEquals(25, importer.importSessions(new ByteArrayInputStream(out.toByteArray())));
+
+        HazelcastSessionManager importedManager = new HazelcastSessionManager(idManager);
+        importedManager.setMapNamePrefix("test.import");
+        importedManager.start();
+        for (int i = 0; i < ids.size(); i++) {
+            final AbstractSession session = importedManager.getSession(ids.get(i));
+            Assert.assertNotNull("Session not imported", session);
+            Assert.assertEquals(i, session.getAttribute("index"));
+        }
+        importedManager.stop();
+        sessionManager.stop();
+        idManager.stop();
+    }
 }